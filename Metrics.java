@@ -0,0 +1,207 @@
+/* SephiaBot
+ * Copyright (C) 2005 Jorge Rodriguez and Ed Anderson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA
+ */
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.lang.management.ManagementFactory;
+import javax.management.ObjectName;
+
+//Counters and latency histograms for the bot's callbacks and I/O.
+//Updates are lock-free, so JMX and the stats command can read them while
+// the poll thread keeps recording.
+class Metrics implements MetricsMBean {
+
+	//Upper bounds of the latency buckets, in microseconds. One more bucket
+	// after these counts everything slower.
+	static final long BUCKETS[] = {100, 250, 500, 1000, 2500, 5000, 10000,
+		25000, 50000, 100000, 250000, 500000, 1000000};
+
+	static class Counter {
+		private final AtomicLong count = new AtomicLong();
+
+		void increment() {
+			count.incrementAndGet();
+		}
+
+		long get() {
+			return count.get();
+		}
+	}
+
+	static class Histogram {
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS.length + 1);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong total = new AtomicLong(); // us
+		private final AtomicLong max = new AtomicLong(); // us
+
+		//Record the time since start, a System.nanoTime() value.
+		void record(long start) {
+			long us = (System.nanoTime() - start) / 1000L;
+			int i = 0;
+			while (i < BUCKETS.length && us > BUCKETS[i])
+				i++;
+			buckets.incrementAndGet(i);
+			count.incrementAndGet();
+			total.addAndGet(us);
+			long oldMax;
+			while (us > (oldMax = max.get()) && !max.compareAndSet(oldMax, us))
+				;
+		}
+
+		long getCount() {
+			return count.get();
+		}
+
+		//Upper bound of the bucket holding the given fraction of samples,
+		// or -1 if it is past the last bound.
+		long percentile(double fraction) {
+			long n = count.get();
+			long seen = 0;
+			for (int i = 0; i < BUCKETS.length; i++) {
+				seen += buckets.get(i);
+				if (seen >= n * fraction)
+					return BUCKETS[i];
+			}
+			return -1;
+		}
+
+		String summary() {
+			long n = count.get();
+			long p99 = percentile(0.99);
+			return n + " calls, avg " + millis(n == 0 ? 0 : total.get() / n) +
+				", p99 " + (p99 == -1 ? ">" + millis(BUCKETS[BUCKETS.length-1]) : "<=" + millis(p99)) +
+				", max " + millis(max.get());
+		}
+	}
+
+	private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+	private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+	//Callers should hold on to the result rather than look it up per line.
+	Counter counter(String name) {
+		Counter counter = counters.get(name);
+		if (counter == null) {
+			counters.putIfAbsent(name, new Counter());
+			counter = counters.get(name);
+		}
+		return counter;
+	}
+
+	Histogram histogram(String name) {
+		Histogram histogram = histograms.get(name);
+		if (histogram == null) {
+			histograms.putIfAbsent(name, new Histogram());
+			histogram = histograms.get(name);
+		}
+		return histogram;
+	}
+
+	public String[] getSummary() {
+		ArrayList<String> lines = new ArrayList<String>();
+		for (String name : new TreeSet<String>(counters.keySet())) {
+			long count = counters.get(name).get();
+			if (count > 0)
+				lines.add(name + ": " + count);
+		}
+		for (String name : new TreeSet<String>(histograms.keySet())) {
+			Histogram histogram = histograms.get(name);
+			if (histogram.getCount() > 0)
+				lines.add(name + ": " + histogram.summary());
+		}
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	//The n used histograms with the worst p99, slowest first, on one line.
+	String slowest(int n) {
+		//Sort a snapshot; the live values can change mid-sort, which would
+		// break the comparator's contract.
+		ArrayList<Slowness> used = new ArrayList<Slowness>();
+		for (Map.Entry<String, Histogram> entry : histograms.entrySet())
+			if (entry.getValue().getCount() > 0)
+				used.add(new Slowness(entry.getKey(), entry.getValue()));
+		Collections.sort(used, new Comparator<Slowness>() {
+			public int compare(Slowness a, Slowness b) {
+				if (a.p99 != b.p99)
+					return a.p99 > b.p99 ? -1 : 1;
+				return a.max > b.max ? -1 : (a.max < b.max ? 1 : 0);
+			}
+		});
+		StringBuffer buf = new StringBuffer();
+		for (int i = 0; i < n && i < used.size(); i++) {
+			Slowness slowness = used.get(i);
+			if (i > 0)
+				buf.append(", ");
+			buf.append(slowness.name).append(" p99 ")
+				.append(slowness.p99 == Long.MAX_VALUE ? ">" + millis(BUCKETS[BUCKETS.length-1]) : "<=" + millis(slowness.p99))
+				.append(" max ").append(millis(slowness.max));
+		}
+		return buf.toString();
+	}
+
+	//One histogram's p99 and max, read once for slowest().
+	private static class Slowness {
+		final String name;
+		final long p99; // Long.MAX_VALUE if past the last bucket
+		final long max;
+
+		Slowness(String name, Histogram histogram) {
+			this.name = name;
+			this.p99 = p99(histogram);
+			this.max = histogram.max.get();
+		}
+	}
+
+	//Sum of the counters whose names start with prefix.
+	long total(String prefix) {
+		long total = 0;
+		for (Map.Entry<String, Counter> entry : counters.entrySet())
+			if (entry.getKey().startsWith(prefix))
+				total += entry.getValue().get();
+		return total;
+	}
+
+	private static long p99(Histogram histogram) {
+		long p99 = histogram.percentile(0.99);
+		return p99 == -1 ? Long.MAX_VALUE : p99;
+	}
+
+	public long getCount(String name) {
+		Counter counter = counters.get(name);
+		if (counter != null)
+			return counter.get();
+		Histogram histogram = histograms.get(name);
+		return histogram == null ? 0 : histogram.getCount();
+	}
+
+	//Make these metrics visible over JMX. Returns false if that failed.
+	boolean register(String name) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+				new ObjectName("SephiaBot:type=Metrics,name=" + ObjectName.quote(name)));
+			return true;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	private static String millis(long us) {
+		return (us / 1000L) + "." + ((us / 100L) % 10L) + "ms";
+	}
+}
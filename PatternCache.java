@@ -0,0 +1,63 @@
+/* SephiaBot
+ * Copyright (C) 2005 Jorge Rodriguez and Ed Anderson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA
+ */
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+//Compiled case-insensitive patterns, keyed by their source string.
+//The least recently used pattern is dropped once the cache is full.
+class PatternCache {
+
+	private final int maxSize;
+	private final LinkedHashMap<String, Pattern> patterns;
+	private long hits;
+	private long misses;
+
+	public PatternCache(int maxSize) {
+		this.maxSize = maxSize;
+		this.patterns = new LinkedHashMap<String, Pattern>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+				return size() > PatternCache.this.maxSize;
+			}
+		};
+	}
+
+	public synchronized Pattern get(String pattern) {
+		Pattern compiled = patterns.get(pattern);
+		if (compiled != null) {
+			hits++;
+			return compiled;
+		}
+		misses++;
+		compiled = Pattern.compile(pattern, Pattern.CASE_INSENSITIVE);
+		patterns.put(pattern, compiled);
+		return compiled;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized int size() {
+		return patterns.size();
+	}
+}
@@ -0,0 +1,71 @@
+/* SephiaBot
+ * Copyright (C) 2005 Jorge Rodriguez and Ed Anderson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA
+ */
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+//Case-insensitive patterns joined into one, so a line can be classified with
+// a single match. The first pattern in the list that matches anywhere in the
+// line wins, the same as trying them one after another.
+//Each pattern becomes a lookahead at the start of the line, followed by an
+// empty group that marks it; patterns that start with ^ are only tried
+// there.
+class PatternSet {
+
+	private final Pattern pattern;
+	private final int markers[]; // group that marks each pattern
+
+	public PatternSet(String patterns[]) {
+		this(patterns, null);
+	}
+
+	//skip[i] leaves patterns[i] out, so it never matches. skip may be null.
+	public PatternSet(String patterns[], boolean skip[]) {
+		StringBuffer buf = new StringBuffer("^(?:");
+		markers = new int[patterns.length];
+		int groups = 0;
+		for (int i = 0; i < patterns.length; i++) {
+			if (i > 0)
+				buf.append('|');
+			if (skip != null && skip[i]) {
+				buf.append("(?!)");
+			} else if (patterns[i].startsWith("^")) {
+				buf.append("(?=").append(patterns[i].substring(1)).append(')');
+				groups += Pattern.compile(patterns[i]).matcher("").groupCount();
+			} else {
+				buf.append("(?=.*?").append(patterns[i]).append(')');
+				groups += Pattern.compile(patterns[i]).matcher("").groupCount();
+			}
+			buf.append("()");
+			markers[i] = ++groups;
+		}
+		buf.append(')');
+		pattern = Pattern.compile(buf.toString(), Pattern.CASE_INSENSITIVE);
+	}
+
+	//Index of the first pattern that matches string, or -1 if none does.
+	public int match(String string) {
+		Matcher matcher = pattern.matcher(string);
+		if (!matcher.lookingAt())
+			return -1;
+		for (int i = 0; i < markers.length; i++)
+			if (matcher.group(markers[i]) != null)
+				return i;
+		return -1;
+	}
+}
@@ -0,0 +1,102 @@
+/* SephiaBot
+ * Copyright (C) 2005 Jorge Rodriguez and Ed Anderson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA
+ */
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+//Token buckets keyed by name, e.g. a channel or a user's host. Each bucket
+// holds up to burst tokens and gets one back every refill ms. A bucket that
+// has filled back up is the same as no bucket, so evictIdle() drops it.
+class RateLimiter {
+
+	private static class Bucket {
+		double tokens;
+		long lastRefill;
+	}
+
+	private final long refill; // ms per token
+	private final int burst;
+	private final Metrics.Counter throttled;
+	private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+
+	public RateLimiter(long refill, int burst, Metrics.Counter throttled) {
+		this.refill = refill;
+		this.burst = burst;
+		this.throttled = throttled;
+	}
+
+	//Whether key has a token to spend. Doesn't spend it.
+	public boolean ready(String key, long now) {
+		if (key == null)
+			return true;
+		Bucket bucket = buckets.get(key);
+		if (bucket == null)
+			return true;
+		synchronized (bucket) {
+			refill(bucket, now);
+			return bucket.tokens >= 1;
+		}
+	}
+
+	//Spend one of key's tokens.
+	public void use(String key, long now) {
+		if (key == null)
+			return;
+		Bucket bucket = buckets.get(key);
+		if (bucket == null) {
+			bucket = new Bucket();
+			bucket.tokens = burst;
+			bucket.lastRefill = now;
+			Bucket existing = buckets.putIfAbsent(key, bucket);
+			if (existing != null)
+				bucket = existing;
+		}
+		synchronized (bucket) {
+			refill(bucket, now);
+			bucket.tokens = Math.max(0, bucket.tokens - 1);
+		}
+	}
+
+	//Count a request that was turned away.
+	public void throttle() {
+		throttled.increment();
+	}
+
+	//Drop the buckets that have filled back up.
+	public void evictIdle(long now) {
+		for (Iterator<Map.Entry<String, Bucket>> i = buckets.entrySet().iterator(); i.hasNext(); ) {
+			Bucket bucket = i.next().getValue();
+			synchronized (bucket) {
+				refill(bucket, now);
+				if (bucket.tokens >= burst)
+					i.remove();
+			}
+		}
+	}
+
+	public int size() {
+		return buckets.size();
+	}
+
+	private void refill(Bucket bucket, long now) {
+		if (now > bucket.lastRefill) {
+			bucket.tokens = Math.min(burst, bucket.tokens + (double)(now - bucket.lastRefill) / refill);
+			bucket.lastRefill = now;
+		}
+	}
+}
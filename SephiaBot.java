@@ -17,6 +17,8 @@
  */
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.regex.Pattern;
 import java.io.IOException;
 import java.net.UnknownHostException;
 
@@ -26,14 +28,289 @@ class SephiaBot implements IRCConnectionListener {
 	
 	private IRCConnection connections[];
 
-	private long nextWho;
-	private long nextHi;
-	private final long SPAM_WAIT = 1000; // ms
+	private static final long DEFAULT_SPAM_WAIT = 1000; // ms
+	private static final long DEFAULT_HI_WAIT = 500; // ms
 	private final long CHECK_ANNOUNCE_WAIT = 1000; // ms
+	private final long POLL_WAIT = 500; // ms
+	private final long SAVE_WAIT = 5000; // ms
+	//Longest broadcast line we build, leaving room for the prefix the
+	// server adds when relaying it.
+	private final int MAX_BROADCAST_LENGTH = 400;
+	private final int REPLIES_PER_POLL = 2; // queued lines sent per poll() pass
+	//Histograms listed by the stats command
+	private final int STATS_SLOWEST = 3;
+	private long lastSave;
+	private boolean dataChanged = false;
 	private long lastCheckAnnounce;
+	private long lastEvict;
 	private boolean greet = true;
 
-	private long lastNickAttempt = 0;
+	//Connection health, per network
+	static final int CON_CONNECTING = 0;
+	static final int CON_CONNECTED = 1;
+	static final int CON_RECONNECTING = 2;
+	static final int CON_LOGIN = 3; // reconnected, poll() still has to log in
+	private static final String conStateNames[] = {"connecting", "connected", "reconnecting", "logging in"};
+	private AtomicIntegerArray conStates;
+
+	private long lastNickAttempt[];
+	private final long NICK_WAIT = 60000; // ms
+	private final long RECONNECT_WAIT = 2000; // ms, doubled after every failed attempt
+	private final long MAX_RECONNECT_WAIT = 300000; // ms, then keep trying this often
+	private final Random random = new Random();
+
+	//One-word commands, looked up by their lowercased first word instead of
+	// trying each command's regex in turn.
+	private static final int CMD_NONE = 0;
+	private static final int CMD_KILL = 1;
+	private static final int CMD_REMIND = 2;
+	private static final int CMD_SEX = 3;
+	private static final int CMD_REBOOT = 4;
+	private static final int CMD_SHUTDOWN = 5;
+	private static final int CMD_RELOAD = 6;
+	private static final int CMD_SAVE = 7;
+	private static final int CMD_LISTHOSTS = 8;
+	private static final int CMD_LOGOUT = 9;
+	private static final int CMD_LOGIN = 10;
+	private static final int CMD_IM = 11;
+	private static final int CMD_MESSAGES = 12;
+	private static final int CMD_SAY = 13;
+	private static final int CMD_MODE = 14;
+	private static final int CMD_SEEN = 15;
+	private static final int CMD_CHANNELS = 16;
+	private static final int CMD_STATS = 17;
+	private static final int NUM_COMMANDS = 18;
+
+	private static final HashMap<String, Integer> commands = new HashMap<String, Integer>();
+	private static final String commandNames[] = new String[NUM_COMMANDS];
+
+	private static void addCommand(int command, String[] words) {
+		commandNames[command] = words[0];
+		for (int i = 0; i < words.length; i++)
+			commands.put(words[i], Integer.valueOf(command));
+	}
+
+	static {
+		addCommand(CMD_KILL, new String[] {"kill"});
+		addCommand(CMD_REMIND, new String[] {"remind", "tell", "ask"});
+		// ^(butt?)?se(x|ck[sz])$
+		addCommand(CMD_SEX, new String[] {"sex", "secks", "seckz",
+			"butsex", "butsecks", "butseckz", "buttsex", "buttsecks", "buttseckz"});
+		addCommand(CMD_REBOOT, new String[] {"reboot", "restart"});
+		addCommand(CMD_SHUTDOWN, new String[] {"shutdown", "die", "leave"});
+		addCommand(CMD_RELOAD, new String[] {"reload"});
+		addCommand(CMD_SAVE, new String[] {"save"});
+		addCommand(CMD_LISTHOSTS, new String[] {"listhosts"});
+		addCommand(CMD_LOGOUT, new String[] {"logout"});
+		addCommand(CMD_LOGIN, new String[] {"login"});
+		// ^i('|"| a)?m$ -- "i am" can't be one token, so it is left out
+		addCommand(CMD_IM, new String[] {"im", "i'm", "i\"m"});
+		addCommand(CMD_MESSAGES, new String[] {"messages", "reminders"});
+		addCommand(CMD_SAY, new String[] {"say", "do", "emote"});
+		addCommand(CMD_MODE, new String[] {"mode"});
+		addCommand(CMD_SEEN, new String[] {"last", "seen"});
+		addCommand(CMD_CHANNELS, new String[] {"channels"});
+		addCommand(CMD_STATS, new String[] {"stats"});
+	}
+
+	//Colloquial commands, in the order they're tried. PatternSet finds the
+	// first one a line matches in a single pass. cleanColloquial leaves out the
+	// ones that aren't allowed where the language is censored.
+	private static final int TALK_WHO_ARE_YOU = 0;
+	private static final int TALK_MARSELLUS = 1;
+	private static final int TALK_WHO_WROTE_YOU = 2;
+	private static final int TALK_WHO_IS_HERE = 3;
+	private static final int TALK_WHO_IS = 4;
+	private static final int TALK_COMPLIMENT = 5;
+	private static final int TALK_CYBER = 6;
+	private static final int TALK_WHERE_IS = 7;
+	private static final int TALK_WHO_AM_I = 8;
+	private static final int TALK_DADDY = 9;
+	private static final int TALK_KNOCK_KNOCK = 10;
+	private static final int TALK_I_SUCK = 11;
+	private static final int TALK_WISDOM = 12;
+	private static final int TALK_DICE = 13;
+	private static final int TALK_DANCE = 14;
+	private static final int TALK_EXCUSE = 15;
+	private static final int TALK_WHY = 16;
+	private static final int TALK_BOT_SNACK = 17;
+	private static final int TALK_PING = 18;
+	private static final String talkPatterns[] = {
+		"^who are you\\W*$",
+		"^what does marsellus wallace look like\\W*$",
+		"^who (wrote|made|programmed|coded|created) you\\W*$",
+		"^who('s| is) here\\W*$",
+		"^who('s| is)",
+		"^(are you|you( a|')re) (sexy|h(o|aw)t|beautiful|awesome|cool|swell)",
+		"^wan(na |t to )cyber",
+		"^wh?[aeu]re?('?[sz]| i[sz]| si| be?)( m(a[ih]|y))?",
+		"^who am i",
+		"^who('| i)?s your daddy",
+		"^knock knock",
+		"i suck dick",
+		"words of wisdom",
+		"roll (the )?dice",
+		"do a little dance",
+		"excuse",
+		"^why",
+		"bot[ -]*snack",
+		"^ping\\W*$",
+	};
+	private static final boolean talkUncensoredOnly[] = new boolean[talkPatterns.length];
+	static {
+		talkUncensoredOnly[TALK_CYBER] = true;
+		talkUncensoredOnly[TALK_I_SUCK] = true;
+		talkUncensoredOnly[TALK_WISDOM] = true;
+	}
+	private static final PatternSet colloquial = new PatternSet(talkPatterns);
+	private static final PatternSet cleanColloquial = new PatternSet(talkPatterns, talkUncensoredOnly);
+
+	//Replies to being insulted, only where the language isn't censored.
+	private static final int INSULT_FUCK_YOU = 0;
+	private static final int INSULT_SCREW_YOU = 1;
+	private static final int INSULT_YOU_SUCK = 2;
+	private static final PatternSet insults = new PatternSet(new String[] {
+		"fuck you", "screw you", "you suck"});
+
+	//Things said to the bot by name. Hellos come from data.matchHellos(),
+	// and the rest are only tried if that doesn't match.
+	private static final int REPLY_HELLO = -2;
+	private static final int REPLY_THANKS = 0;
+	private static final int REPLY_BOUNCY = 1;
+	private static final int REPLY_RIGHT = 2;
+	private static final int REPLY_CUSTARD = 3;
+	private static final PatternSet afterHellos = new PatternSet(new String[] {
+		"(thank( ?(yo)?u|[sz])\\b|\\bt(y|hn?x)\\b)",
+		"bounc[ye]",
+		"(right|correct)",
+		"(custard|flavor( of? the? day)?|fotd)"});
+
+	private static final PatternCache patterns = new PatternCache(256);
+
+	//Patterns that contain the bot's configured name, compiled once per
+	// connection and rebuilt only when that name changes.
+	private static class NamePatterns {
+		final String name;
+		final Pattern privateMsg;
+		final Pattern talkingToMe;
+		final Pattern endsWithName;
+		final Pattern mention;
+		final Pattern hugs;
+		final Pattern hits;
+		final Pattern pets;
+		final Pattern pokes;
+		final Pattern tickles;
+
+		NamePatterns(String name) {
+			this.name = name;
+			int nameEnd = name.length() < 4 ? name.length() : 4;
+			privateMsg = compile("^" + name + "-*$");
+			talkingToMe = compile("^" + name.substring(0, nameEnd));
+			endsWithName = compile(name + "[^a-zA-Z]*$");
+			mention = compile(name);
+			hugs = compile("hugs " + name);
+			hits = compile("(slaps|smacks|hits|punches|kicks) " + name);
+			pets = compile("p[ea]ts " + name);
+			pokes = compile("pokes " + name);
+			tickles = compile("tickles " + name);
+		}
+
+		private static Pattern compile(String pattern) {
+			return Pattern.compile(pattern, Pattern.CASE_INSENSITIVE);
+		}
+	}
+
+	private NamePatterns namePatterns[];
+
+	//Per network: RFC 1459 lowercased channel name -> config channel index
+	private ArrayList<HashMap<String, Integer>> channelNumbers;
+
+	//Per network: PRIVMSG targets allowed per line, from RPL_ISUPPORT
+	private AtomicIntegerArray maxTargets;
+
+	//A line waiting for poll() to send it: a reply worked out on another
+	// thread, or one line of a broadcast.
+	private static class Reply {
+		final IRCConnection con;
+		final String recipient;
+		final String message;
+		final boolean emote;
+
+		Reply(IRCConnection con, String recipient, String message) {
+			this(con, recipient, message, false);
+		}
+
+		Reply(IRCConnection con, String recipient, String message, boolean emote) {
+			this.con = con;
+			this.recipient = recipient;
+			this.message = message;
+			this.emote = emote;
+		}
+	}
+
+	private final ArrayList<Reply> replies = new ArrayList<Reply>();
+
+	//A flavor of the day question waiting on the lookup worker.
+	private static class FlavorLookup {
+		final IRCConnection con;
+		final String recipient;
+		final int offset;
+
+		FlavorLookup(IRCConnection con, String recipient, int offset) {
+			this.con = con;
+			this.recipient = recipient;
+			this.offset = offset;
+		}
+	}
+
+	private final ArrayList<FlavorLookup> flavorLookups = new ArrayList<FlavorLookup>();
+	private boolean fetchingFlavor = false; // guarded by flavorLookups
+	private static final String FLAVOR_ERROR = "Sorry, I couldn't find out.";
+
+	private final Metrics metrics = new Metrics();
+	private final Metrics.Histogram emoteTime = metrics.histogram("callback.emote");
+	private final Metrics.Histogram privMsgTime = metrics.histogram("callback.privmsg");
+	private final Metrics.Histogram joinTime = metrics.histogram("callback.join");
+	private final Metrics.Histogram partTime = metrics.histogram("callback.part");
+	private final Metrics.Histogram quitTime = metrics.histogram("callback.quit");
+	private final Metrics.Histogram nickTime = metrics.histogram("callback.nick");
+	private final Metrics.Histogram modeTime = metrics.histogram("callback.mode");
+	private final Metrics.Histogram chanListTime = metrics.histogram("callback.chanlist");
+	private final Metrics.Histogram userHostsTime = metrics.histogram("callback.userhosts");
+	private final Metrics.Histogram whoTime = metrics.histogram("callback.who");
+	private final Metrics.Histogram pollTime = metrics.histogram("poll");
+	private final Metrics.Histogram timedMessagesTime = metrics.histogram("poll.timedmessages");
+	private final Metrics.Histogram announceTime = metrics.histogram("poll.announcements");
+	private final Metrics.Histogram writeDataTime = metrics.histogram("io.writedata");
+	private final Metrics.Histogram logfileTime = metrics.histogram("io.logfile");
+	private final Metrics.Histogram commandTimes[] = new Metrics.Histogram[NUM_COMMANDS];
+	private Metrics.Counter linesIn[];
+	//The one-word command messagePrivMsg is handling, if any
+	private int dispatchedCommand = CMD_NONE;
+
+	//Spam guards, per channel and per user's host
+	//Set per command class with --limit; see limiter().
+	private RateLimiter whoLimiter;
+	private RateLimiter hiLimiter;
+
+	private NamePatterns namePatterns(int index) {
+		String name = data.getName(index);
+		NamePatterns p = namePatterns[index];
+		if (p == null || !p.name.equals(name)) {
+			p = new NamePatterns(name);
+			namePatterns[index] = p;
+		}
+		return p;
+	}
+
+	private static boolean find(Pattern pattern, String string) {
+		return pattern.matcher(string).find();
+	}
+
+	static int commandNumber(String cmd) {
+		Integer command = commands.get(cmd.toLowerCase(Locale.ENGLISH));
+		return command == null ? CMD_NONE : command.intValue();
+	}
 
 	//XXX: For every place censor() is used, IRCConnection must set currChannel higher in the stack for it to work correctly.
 	private boolean censor(IRCConnection con) { return data.getCensor(con.getIndex(), con.getCurrentChannel()); }
@@ -41,8 +318,11 @@ class SephiaBot implements IRCConnectionListener {
 	public static void main(String args[]) {
 		String cfgPath = "sephiabot.xml";
 		boolean greet = true;
-		final String usage = "\nUsage: sephiabot [-c config file] [--nogreet]\n" +
-			" Default config file: ./sephiabot.xml";
+		HashMap<String, String> limits = new HashMap<String, String>();
+		final String usage = "\nUsage: sephiabot [-c config file] [--nogreet] [--limit who|hi=ms[/burst]]...\n" +
+			" Default config file: ./sephiabot.xml\n" +
+			" --limit sets how often the bot answers chatter (who) or hellos (hi)\n" +
+			"  per channel and per user. Defaults: who=" + DEFAULT_SPAM_WAIT + "/1, hi=" + DEFAULT_HI_WAIT + "/1";
 
 		if (args != null && args.length > 0) {
 			for (int i = 0; i < args.length; i++) {
@@ -59,6 +339,16 @@ class SephiaBot implements IRCConnectionListener {
 					i++; //Skip the next argument
 				} else if (args[i].equals("--nogreet")) {
 					greet = false;
+				} else if (args[i].equals("--limit")) {
+					//Short enough to parse: up to 999999999 ms and a burst of 9999.
+					if (args.length > i+1 && args[i+1].matches("^(who|hi)=[1-9][0-9]{0,8}(/[1-9][0-9]{0,3})?$")) {
+						int equals = args[i+1].indexOf('=');
+						limits.put(args[i+1].substring(0, equals), args[i+1].substring(equals+1));
+					} else {
+						System.out.println("--limit needs a class and a wait, like who=1000 or hi=500/2" + usage);
+						System.exit(0);
+					}
+					i++; //Skip the next argument
 				} else {
 					System.out.println("Invalid argument: " + args[i] + usage);
 					System.exit(0);
@@ -66,20 +356,26 @@ class SephiaBot implements IRCConnectionListener {
 			}
 		}
 
-		SephiaBot sephiaBot = new SephiaBot(cfgPath, greet);
+		SephiaBot sephiaBot = new SephiaBot(cfgPath, greet, limits);
 		sephiaBot.connect();
 
 		while (sephiaBot.hasConnections()) {
 			sephiaBot.poll();
 		}
+		sephiaBot.flushData();
 		sephiaBot.log("All connections have been closed. Exiting.");
 	}
 
 	public SephiaBot(String config, boolean greet) {
+		this(config, greet, new HashMap<String, String>());
+	}
+
+	//limits maps a command class ("who" or "hi") to "ms[/burst]".
+	public SephiaBot(String config, boolean greet, Map<String, String> limits) {
 
-		this.nextWho = 0;
-		this.nextHi = 0;
 		this.greet = greet;
+		this.whoLimiter = limiter("who", DEFAULT_SPAM_WAIT, limits);
+		this.hiLimiter = limiter("hi", DEFAULT_HI_WAIT, limits);
 
 		this.data = new SephiaBotData(config);
 		
@@ -88,15 +384,68 @@ class SephiaBot implements IRCConnectionListener {
 		data.parseConfig();
 
 		// this must happen after config parsing.
+		buildChannelNumbers();
 		this.connections = new IRCConnection[data.getNumNetworks()];
+		this.namePatterns = new NamePatterns[data.getNumNetworks()];
+		this.maxTargets = new AtomicIntegerArray(data.getNumNetworks());
+		this.conStates = new AtomicIntegerArray(data.getNumNetworks());
+		this.lastNickAttempt = new long[data.getNumNetworks()];
+		for (int i = 0; i < maxTargets.length(); i++)
+			maxTargets.set(i, 1);
+
+		this.linesIn = new Metrics.Counter[data.getNumNetworks()];
+		for (int i = 0; i < linesIn.length; i++)
+			linesIn[i] = metrics.counter("lines.in." + data.getNetwork(i));
+		for (int i = CMD_NONE + 1; i < NUM_COMMANDS; i++)
+			commandTimes[i] = metrics.histogram("command." + commandNames[i]);
+		if (!metrics.register(config))
+			logerror("Couldn't register metrics with JMX.");
 	}
 
 	boolean hasConnections() {
-		for (int i = 0; i < connections.length; i++)
-			if (connections[i].isConnected())
+		for (int i = 0; i < connections.length; i++) {
+			int state = conStates.get(i);
+			if (state == CON_CONNECTING || state == CON_RECONNECTING || state == CON_LOGIN ||
+					(state == CON_CONNECTED && connections[i].isConnected()))
 				return true;
+		}
 		return false;
 	}
+
+	private void setConnectionState(int i, int state) {
+		if (conStates.getAndSet(i, state) != state)
+			log("Network " + data.getNetwork(i) + " is " + conStateNames[state] + ".");
+	}
+
+	//Whether con is registered and read by the poll thread, so it's safe to
+	// send on. Connections that are being dialed or redialed belong to
+	// another thread until then.
+	private boolean isLive(IRCConnection con) {
+		return conStates.get(con.getIndex()) == CON_CONNECTED;
+	}
+
+	private IRCConnection[] liveConnections() {
+		ArrayList<IRCConnection> live = new ArrayList<IRCConnection>(connections.length);
+		for (int i = 0; i < connections.length; i++)
+			if (isLive(connections[i]))
+				live.add(connections[i]);
+		return live.toArray(new IRCConnection[live.size()]);
+	}
+
+	//One line per network saying how its connection is doing. Only reads
+	// conStates, since the connections may belong to other threads.
+	String[] connectionHealth() {
+		String health[] = new String[connections.length];
+		for (int i = 0; i < connections.length; i++)
+			health[i] = data.getNetwork(i) + ": " + conStateNames[conStates.get(i)];
+		return health;
+	}
+
+	//A random wait between half of and all of wait, so networks that dropped
+	// together don't all redial at the same moment.
+	private long jitter(long wait) {
+		return wait / 2 + (long)(random.nextDouble() * (wait / 2));
+	}
 	
 	String makeTime(long time) {
 		long dur = Math.abs(time - System.currentTimeMillis()); 
@@ -130,72 +479,189 @@ class SephiaBot implements IRCConnectionListener {
 		return result;
 	}
 
+	//Dial every network at once, each on its own thread, and return right away.
+	// poll() picks each network up once it has connected, so a slow or
+	// unreachable server holds up nothing but itself.
 	void connect() {
-
-		String[] channels;
-		for (int i = 0; i < data.getNumNetworks(); i++) {
+		//Every connection must exist before any of them can deliver a callback.
+		for (int i = 0; i < connections.length; i++) {
 			log("Network: " + data.getNetwork(i) + " " + data.getPort(i) + " : " + data.getName(i));
-			
-			//Quickly build a channel list.
-			channels = new String[data.getNumChannels(i)];
-			for (int j = 0; j < channels.length; j++)
-				channels[j] = data.getChannel(i, j);
-
 			connections[i] = new IRCConnection(this, i);
-			//Try CONNECT_ATTEMPT times, or until connected
-			for (int j = 0; !connections[i].isConnected() && j < IRCConnection.CONNECT_ATTEMPTS; j++)
-				try {
-					connections[i].connect(channels, data.getNetwork(i), data.getPort(i), data.getName(i));
-				} catch (UnknownHostException ioe) {
-					log("Connection failed: Host not found: " + ioe.getMessage() + ". Giving up.");
-					connections[i].disconnect();
-					break;
-				} catch (IOException ioe) {
-					log("Connection attempt " + (j+1) + " failed: " + ioe.getMessage() + ". " +
-							(j < IRCConnection.CONNECT_ATTEMPTS-1?"Trying again.":"Giving up."));
-					log(ioe.toString());
-					connections[i].disconnect();
+			conStates.set(i, CON_CONNECTING);
+		}
+		for (int i = 0; i < connections.length; i++) {
+			final int network = i;
+			Thread connector = new Thread("Connect to " + data.getNetwork(i)) {
+				public void run() {
+					connect(network);
 				}
+			};
+			connector.setDaemon(true);
+			connector.start();
 		}
-		
 	}
 
-	void poll() {
-		for (int i = 0; i < connections.length; i++) {
-			IRCIO io = connections[i].getIRCIO();
+	//Connect to one network, retrying with a growing wait until it works.
+	// Runs on its own thread; see connect().
+	private void connect(int i) {
+		//Quickly build a channel list.
+		String[] channels = new String[data.getNumChannels(i)];
+		for (int j = 0; j < channels.length; j++)
+			channels[j] = data.getChannel(i, j);
+
+		long wait = RECONNECT_WAIT;
+		for (int attempt = 1; ; attempt++) {
 			try {
-				if (!data.getName(i).equals(io.getName()) &&
-						System.currentTimeMillis() > lastNickAttempt + 60000) { //If we didn't get the nick we wanted
-					lastNickAttempt = System.currentTimeMillis();
-					io.changeNick(data.getName(i));
-				}
-				io.poll();
+				connections[i].connect(channels, data.getNetwork(i), data.getPort(i), data.getName(i));
+			} catch (UnknownHostException ioe) {
+				log("Connection attempt " + attempt + " to " + data.getNetwork(i) + " failed: Host not found: " +
+						ioe.getMessage() + ". Trying again.");
+				connections[i].disconnect();
 			} catch (IOException ioe) {
-				logerror("Couldn't poll for input on connection to " + io.getName() + ": " + ioe.getMessage());
-				log("Reconnecting.");
+				log("Connection attempt " + attempt + " to " + data.getNetwork(i) + " failed: " + ioe.getMessage() + ". Trying again.");
+				log(ioe.toString());
+				connections[i].disconnect();
+			}
+			if (connections[i].isConnected())
+				break;
+			try {
+				Thread.sleep(jitter(wait));
+			} catch (InterruptedException ie) {}
+			wait = Math.min(wait * 2, MAX_RECONNECT_WAIT);
+		}
+		setConnectionState(i, CON_CONNECTED);
+	}
+
+	//Redial a dropped connection in the background, waiting longer after each
+	// failed attempt up to MAX_RECONNECT_WAIT, and never giving up. Once the
+	// socket is back, poll() logs in again.
+	private void reconnect(final int i) {
+		setConnectionState(i, CON_RECONNECTING);
+		final IRCIO io = connections[i].getIRCIO();
+		Thread reconnector = new Thread("Reconnect to " + data.getNetwork(i)) {
+			public void run() {
+				long wait = RECONNECT_WAIT;
+				for (int attempt = 1; ; attempt++) {
+					try {
+						Thread.sleep(jitter(wait));
+					} catch (InterruptedException ie) {}
+					try {
+						io.connect();
+						setConnectionState(i, CON_LOGIN);
+						return;
+					} catch (IOException ioe) {
+						logerror("Couldn't reconnect to " + data.getNetwork(i) + " (attempt " + attempt + "): " + ioe.getMessage());
+						io.disconnect();
+					}
+					wait = Math.min(wait * 2, MAX_RECONNECT_WAIT);
+				}
+			}
+		};
+		reconnector.setDaemon(true);
+		reconnector.start();
+	}
+
+	void poll() {
+		long pollStart = System.nanoTime();
+		//Connect threads may deliver callbacks while we work; take the same
+		// lock they do.
+		synchronized (this) {
+			for (int i = 0; i < connections.length; i++) {
+				int state = conStates.get(i);
+				//Connections that are still being dialed or redialed are left alone.
+				if (state != CON_CONNECTED && state != CON_LOGIN)
+					continue;
+				IRCIO io = connections[i].getIRCIO();
 				try {
-					io.connect();
-					io.login();
-				} catch (IOException ioe2) {
-					logerror("Couldn't reconnect: " + ioe2.getMessage());
-					io.disconnect();
-					//broadcast(io.getName() + " died. :(");
+					if (state == CON_LOGIN) {
+						io.login();
+						setConnectionState(i, CON_CONNECTED);
+					}
+					if (!data.getName(i).equals(io.getName()) &&
+							System.currentTimeMillis() > lastNickAttempt[i] + NICK_WAIT) { //If we didn't get the nick we wanted
+						lastNickAttempt[i] = System.currentTimeMillis();
+						io.changeNick(data.getName(i));
+					}
+					io.poll();
+				} catch (IOException ioe) {
+					logerror("Couldn't poll for input on connection to " + io.getName() + ": " + ioe.getMessage());
+					log("Reconnecting.");
+					reconnect(i);
 				}
 			}
-		}
-		checkForTimedMessages(connections);
-		if (System.currentTimeMillis() > CHECK_ANNOUNCE_WAIT + lastCheckAnnounce) {
-			data.checkAnnouncements(connections);
-			lastCheckAnnounce = System.currentTimeMillis();
+			sendReplies();
+			long start = System.nanoTime();
+			//Only hand out connections it's safe to send on.
+			IRCConnection live[] = liveConnections();
+			checkForTimedMessages(live);
+			timedMessagesTime.record(start);
+			if (dataChanged && System.currentTimeMillis() > SAVE_WAIT + lastSave)
+				writeData();
+			//checkAnnouncements expects the whole connections array, one entry
+			// per network, and doesn't know about connection states. So only
+			// run it once every network is live; until then due announcements
+			// wait instead of being dropped or sent on a socket another thread
+			// is dialing.
+			if (System.currentTimeMillis() > CHECK_ANNOUNCE_WAIT + lastCheckAnnounce &&
+					live.length == connections.length) {
+				start = System.nanoTime();
+				data.checkAnnouncements(connections);
+				announceTime.record(start);
+				lastCheckAnnounce = System.currentTimeMillis();
+			}
+			if (System.currentTimeMillis() > CHECK_ANNOUNCE_WAIT + lastEvict) {
+				lastEvict = System.currentTimeMillis();
+				whoLimiter.evictIdle(lastEvict);
+				hiLimiter.evictIdle(lastEvict);
+			}
+			pollTime.record(pollStart);
 		}
 		
-		try {
-			Thread.sleep(500);
-		} catch (InterruptedException ie) {}
+		//Only sleep for whatever is left of the poll interval, and never past
+		// the next announcement check.
+		long now = System.currentTimeMillis();
+		long wait = POLL_WAIT - (System.nanoTime() - pollStart) / 1000000L;
+		long untilAnnounce = lastCheckAnnounce + CHECK_ANNOUNCE_WAIT - now;
+		if (untilAnnounce > 0 && untilAnnounce < wait)
+			wait = untilAnnounce;
+		if (wait > 0) {
+			try {
+				Thread.sleep(wait);
+			} catch (InterruptedException ie) {}
+		}
+	}
+
+	//Mark the bot's data as changed. poll() writes it out at most once every
+	// SAVE_WAIT, so a burst of changes costs a single write.
+	void saveData() {
+		dataChanged = true;
+	}
+
+	//Write the bot's data out if anything is still waiting to be saved.
+	void flushData() {
+		if (dataChanged)
+			writeData();
 	}
 
+	//Write the bot's data out now.
+	void writeData() {
+		dataChanged = false;
+		lastSave = System.currentTimeMillis();
+		long start = System.nanoTime();
+		data.writeData();
+		writeDataTime.record(start);
+	}
+
+	//Write a line to a channel's log, timing it.
+	private void logfile(IRCConnection con, String channelName, String log) {
+		long start = System.nanoTime();
+		con.logfile(channelName, log);
+		logfileTime.record(start);
+	}
+
+	//Same as SephiaBotData.iregex, but without recompiling the pattern each time.
 	private boolean iregex(String pattern, String string) {
-		return SephiaBotData.iregex(pattern, string);
+		return find(patterns.get(pattern), string);
 	}
 	
 	private boolean iequals(String str1, String str2) {
@@ -204,7 +670,11 @@ class SephiaBot implements IRCConnectionListener {
 
 	//Check if this person has any messages
 	public void checkForMessages(IRCConnection con, String nick, String host, String recipient) {
-		User user = data.getUserByHost(host);
+		checkForMessages(con, nick, data.getUserByHost(host), recipient);
+	}
+
+	//Same as above, for callers that have already looked up the host's User.
+	private void checkForMessages(IRCConnection con, String nick, User user, String recipient) {
 		int totalMessages = 0;
 
 		// Don't remind again if they just saw it < MESSAGE_STALE_DUR ago
@@ -254,30 +724,43 @@ class SephiaBot implements IRCConnectionListener {
 			// or just find them anywhere.
 			if (target != null) {
 				if (target.home != null) {
-					// They have a home set
-					for (int k = 0; k < connections.length; k++) {
-						con = connections[k];
+					// They have a home set. Look for it on every network,
+					// not just the live ones we were handed.
+					for (int k = 0; k < this.connections.length; k++) {
+						con = this.connections[k];
 						channel = con.getServer().findChannel(target.home);
 						if (channel != null)
 							break;
 					}
+					if (channel == null && connections.length < this.connections.length) {
+						// It may be on a network that isn't back yet.
+						// Keep the home and try again later.
+						continue;
+					}
 					if (channel == null) {
 						// Couldn't find the user's home channel.
 						// Reset home.
 						log("Can't find home '" + target.home + " for " +
 								target + ".  Removing Home.");
-						//TODO: We should maybe restore the home later, in
-						//		case it's gone from a missing connection
-						//		that could be restored.
 						target.home = null;
 						return;
 					}
+					if (!isLive(con)) {
+						// Its network is still being dialed; leave the
+						// message pending until it's live.
+						continue;
+					}
 				}
 				// home might have changed. Check again.
 				if (target.home == null && target.lastChannel != null) {
 					// Channel where they last spoke
 					channel = target.lastChannel;
 					con = channel.myServer.myConnection;
+					if (!isLive(con)) {
+						// Can't send there right now; look elsewhere.
+						con = null;
+						channel = null;
+					}
 				}
 			}
 			// If we haven't found them yet, look in every channel
@@ -300,13 +783,24 @@ class SephiaBot implements IRCConnectionListener {
 					makeTime(message.timeSent) + " ago]: " + message.message);
 				message.notified = true;
 				message.timeNotified = System.currentTimeMillis();
-				data.writeData();
+				saveData();
 				data.findNextMessageTime();
 			}
 		}
 	}
 	
-	public void messagePrivEmote(IRCConnection con, String nick, String host, String recipient, String msg) {
+	//Callbacks are synchronized because the connect threads can deliver them
+	// while poll() is running.
+	public synchronized void messagePrivEmote(IRCConnection con, String nick, String host, String recipient, String msg) {
+		long start = System.nanoTime();
+		try {
+			handleEmote(con, nick, host, recipient, msg);
+		} finally {
+			emoteTime.record(start);
+		}
+	}
+
+	private void handleEmote(IRCConnection con, String nick, String host, String recipient, String msg) {
 		String log;
 		// This will be null, unless the message is to a channel.  Always check.
 		IRCChannel channel = con.getServer().findChannel(recipient);
@@ -314,43 +808,47 @@ class SephiaBot implements IRCConnectionListener {
     if (channel != null)
       channel.lastActivity = System.currentTimeMillis(); // now
 		
-		if (iregex("^"+data.getName(con.getIndex())+"-*$", recipient))
+		NamePatterns names = namePatterns(con.getIndex());
+		if (find(names.privateMsg, recipient))
 			recipient = nick;
 
 		log = "* " + nick + " " + msg;
 
-		con.logfile(recipient, log);
+		logfile(con, recipient, log);
 		
-		String botname = data.getName(con.getIndex());
 		msg = msg.trim();
 
 		data.updateUserTimes(nick, host, con.getServer(), recipient);
 		checkForMessages(con, nick, host, recipient);
 		checkForBlacklist(con, nick, host, recipient);
 		
-		if (System.currentTimeMillis() > nextWho) { //!spam
-			nextWho = System.currentTimeMillis() + SPAM_WAIT;
+		//Most emotes aren't aimed at the bot; only those count against the limit.
+		boolean reacts = find(names.hugs, msg) || find(names.hits, msg) ||
+			find(names.pets, msg) || find(names.pokes, msg) || find(names.tickles, msg) ||
+			(find(names.mention, msg) && iregex("bot[ -]*snack", msg));
+		if (reacts && spamOK(whoLimiter, con, recipient, host)) { //!spam
+			spammed(whoLimiter, con, recipient, host);
 						
-			if (iregex("hugs " + botname, msg)) {
+			if (find(names.hugs, msg)) {
 				if (data.isVino(host))
 					con.getIRCIO().privemote(recipient, "hugs Vino!");
 				else if (censor(con))
 					con.getIRCIO().privemote(recipient, "hugs " + nick + "!");
 				else
 					con.getIRCIO().privmsg(recipient, "Get the fuck off.");
-			} else if (iregex("(slaps|smacks|hits|punches|kicks) " + botname, msg)) {
+			} else if (find(names.hits, msg)) {
 				String action = msg.replaceFirst(" .*", "");
 				con.getIRCIO().privemote(recipient, action + " back harder!");
-			} else if (iregex("p[ea]ts " + botname, msg)) {
+			} else if (find(names.pets, msg)) {
 				con.getIRCIO().privemote(recipient, "purrs.");
-			} else if (iregex("pokes " + botname, msg)) {
+			} else if (find(names.pokes, msg)) {
 				boolean tickle = new Random().nextBoolean();
 				if (tickle == true) {
 					con.getIRCIO().privemote(recipient, "laughs.");
 				} else {
 					con.getIRCIO().privmsg(recipient, "Ouch!"); 
 				}
-			} else if (iregex("tickles " + botname, msg)) {
+			} else if (find(names.tickles, msg)) {
 				User user = data.getUserByNick(connections, nick);
 				if (user != null) { 
 					con.getIRCIO().privemote(recipient, "giggles."); 
@@ -358,7 +856,7 @@ class SephiaBot implements IRCConnectionListener {
 
 					con.getIRCIO().privemote(recipient, "slaps " + nick + ".");
 				}
-			} else if (iregex(botname, msg) &&
+			} else if (find(names.mention, msg) &&
 					iregex("bot[ -]*snack", msg)) {
 				con.getIRCIO().privmsg(recipient, "Yaaaaaay!");
 			}
@@ -366,7 +864,19 @@ class SephiaBot implements IRCConnectionListener {
 		}
 	}
 
-	public void messagePrivMsg(IRCConnection con, String nick, String host, String recipient, String origmsg) {
+	public synchronized void messagePrivMsg(IRCConnection con, String nick, String host, String recipient, String origmsg) {
+		long start = System.nanoTime();
+		dispatchedCommand = CMD_NONE;
+		try {
+			handlePrivMsg(con, nick, host, recipient, origmsg);
+		} finally {
+			privMsgTime.record(start);
+			if (dispatchedCommand != CMD_NONE)
+				commandTimes[dispatchedCommand].record(start);
+		}
+	}
+
+	private void handlePrivMsg(IRCConnection con, String nick, String host, String recipient, String origmsg) {
 		boolean pm = false;
 		String log;
 		String msg = origmsg;
@@ -376,26 +886,27 @@ class SephiaBot implements IRCConnectionListener {
     if (channel != null)
       channel.lastActivity = System.currentTimeMillis(); // now
 
-		if (iregex("^"+data.getName(con.getIndex())+"-*$", recipient)) {
+		NamePatterns names = namePatterns(con.getIndex());
+		if (find(names.privateMsg, recipient)) {
 			recipient = nick;
 			pm = true;
 		}
 
-		log = "<" + nick + "> ";
-		log += msg.substring(0, msg.length());
+		log = "<" + nick + "> " + msg;
 
-		con.logfile(recipient, log);
+		logfile(con, recipient, log);
 
 		msg = msg.trim();
 
 		data.updateUserTimes(nick, host, con.getServer(), recipient);
-		checkForMessages(con, nick, host, recipient);
+		//Look the speaker up once; nothing below logs a host in or out
+		// before its last use.
+		User hostUser = data.getUserByHost(host);
+		checkForMessages(con, nick, hostUser, recipient);
 		checkForBlacklist(con, nick, host, recipient);
 		if (channel != null)
 			channel.updateHistory(nick, msg);
 		
-		String name = data.getName(con.getIndex());
-
 		StringTokenizer tok = new StringTokenizer(msg, ",: ");
 		String botname;
 		if (!pm && tok.hasMoreElements()) {
@@ -404,11 +915,17 @@ class SephiaBot implements IRCConnectionListener {
 			botname = "";
 		}
 
-		if (pm || talkingToMe(msg, data.getName(con.getIndex()))) {
+		if (pm || find(names.talkingToMe, msg)) {
 
-			//Remove the bot's name
-			if (!pm)
-				msg = msg.replaceFirst(botname + "[,: ]+", "");
+			//Remove the bot's name. It is the first token, so it starts msg.
+			if (!pm) {
+				int start = botname.length();
+				if (start < msg.length() && msg.startsWith(botname)) {
+					while (start < msg.length() && ",: ".indexOf(msg.charAt(start)) != -1)
+						start++;
+					msg = msg.substring(start);
+				}
+			}
 
 			if (iregex("bring out the strapon", msg)) {
 				con.getIRCIO().privemote(recipient, "steps forward with a large strapon and begins mashing potatoes.");
@@ -419,47 +936,47 @@ class SephiaBot implements IRCConnectionListener {
 
 			//BEGIN COLLOQUIAL COMMANDS
 			//These commands can be used anywhere if the bot's name is spoken first.
-			if (iregex("^who are you\\W*$", msg)) {
-				if (System.currentTimeMillis() > nextWho) {	//!spam
+			int talk = (censor(con) ? cleanColloquial : colloquial).match(msg);
+			if (talk == TALK_WHO_ARE_YOU) {
+				if (spamOK(whoLimiter, con, recipient, host)) {	//!spam
 					con.getIRCIO().privmsg(recipient, "I am an advanced SephiaBot channel bot.");
 					con.getIRCIO().privmsg(recipient, "I'll kick your " + (censor(con)?"butt":"ass") + " in days that end in 'y'.");
 					con.getIRCIO().privmsg(recipient, "I was written by Vino. Vino rocks.");
-					nextWho = System.currentTimeMillis() + SPAM_WAIT;
+					spammed(whoLimiter, con, recipient, host);
 				}
 				return;
-			} else if ( iregex("^what does marsellus wallace look like\\W*$", msg)) {
-				if (System.currentTimeMillis() > nextWho) {	//!spam
+			} else if (talk == TALK_MARSELLUS) {
+				if (spamOK(whoLimiter, con, recipient, host)) {	//!spam
 					con.getIRCIO().privmsg(recipient, "He's black.");
-					nextWho = System.currentTimeMillis() + SPAM_WAIT;
+					spammed(whoLimiter, con, recipient, host);
 				}
 				return;
-			} else if (iregex("^who (wrote|made|programmed|coded|created) you\\W*$", msg)) {
-				if (System.currentTimeMillis() > nextWho) {	//!spam
+			} else if (talk == TALK_WHO_WROTE_YOU) {
+				if (spamOK(whoLimiter, con, recipient, host)) {	//!spam
 					con.getIRCIO().privmsg(recipient, "I was written by Vino. Vino rocks.");
 					con.getIRCIO().privmsg(recipient, "Nilbus helped too.");
-					nextWho = System.currentTimeMillis() + SPAM_WAIT;
+					spammed(whoLimiter, con, recipient, host);
 				}
 				return;
-			} else if (iregex("^who('s| is) here\\W*$", msg)) {
-				if (System.currentTimeMillis() > nextWho) {	//!spam
+			} else if (talk == TALK_WHO_IS_HERE) {
+				if (spamOK(whoLimiter, con, recipient, host)) {	//!spam
 
 					int channum = channelNumber(con.getIndex(), recipient);
 					if (channum == -1 || pm) {
 						con.getIRCIO().privmsg(recipient, "It's just you and me in a PM, buddy.");
-						nextWho = System.currentTimeMillis() + SPAM_WAIT;
+						spammed(whoLimiter, con, recipient, host);
 					} else {
 						StringBuffer buf = new StringBuffer("Users in this channel:");
-						IRCUser current = con.getServer().channels[channum].users;
 						for (IRCUser curr = con.getServer().channels[channum].users; curr != null; curr = curr.next) {
-							buf.append(" " + curr.name);
+							buf.append(' ').append(curr.name);
 						}
 						con.getIRCIO().privmsg(recipient, buf.toString());
-						nextWho = System.currentTimeMillis() + SPAM_WAIT;
+						spammed(whoLimiter, con, recipient, host);
 					}
 				}
 				return;
-			} else if (iregex("^who('s| is)", msg)) {
-				if (System.currentTimeMillis() > nextWho) {	//!spam
+			} else if (talk == TALK_WHO_IS) {
+				if (spamOK(whoLimiter, con, recipient, host)) {	//!spam
 					String whoisName = msg.substring(msg.lastIndexOf(' ')+1, msg.length());
 					if (talkingToMe(whoisName, data.getName(con.getIndex())))
 						con.getIRCIO().privmsg(recipient, "I am an advanced SephiaBot channel bot.");
@@ -470,11 +987,11 @@ class SephiaBot implements IRCConnectionListener {
 						else
 							con.getIRCIO().privmsg(recipient, target.description);
 					}
-					nextWho = System.currentTimeMillis() + SPAM_WAIT;
+					spammed(whoLimiter, con, recipient, host);
 				}
 				return;
-			} else if (iregex("^(are you|you( a|')re) (sexy|h(o|aw)t|beautiful|awesome|cool|swell)", msg)) {
-				if (System.currentTimeMillis() > nextWho) {	//!spam
+			} else if (talk == TALK_COMPLIMENT) {
+				if (spamOK(whoLimiter, con, recipient, host)) {	//!spam
 					String compliment = data.iregexFind("(sexy|h(o|aw)t|beautiful|awesome|cool|swell)", msg);
 					if (censor(con))
 						if (compliment.equals("sexy"))
@@ -483,22 +1000,22 @@ class SephiaBot implements IRCConnectionListener {
 							con.getIRCIO().privmsg(recipient, "I am so " + compliment + ".");
 					else
 						con.getIRCIO().privmsg(recipient, "Fuck yes.");
-					nextWho = System.currentTimeMillis() + SPAM_WAIT;
+					spammed(whoLimiter, con, recipient, host);
 				}
 				return;
-			} else if (!censor(con) && iregex("^wan(na |t to )cyber", msg)) {
-				if (System.currentTimeMillis() > nextWho) {	//!spam
+			} else if (talk == TALK_CYBER) {
+				if (spamOK(whoLimiter, con, recipient, host)) {	//!spam
 					User user = data.getUserByNick(connections, nick);
 					if (data.isVino(host) || user != null && iequals(user.userName, "Yukie")) {
 						con.getIRCIO().privmsg(recipient, "Take me, " + nick + "!");
 					} else {
 						con.getIRCIO().privmsg(recipient, "Fuck no.");
 					}
-					nextWho = System.currentTimeMillis() + SPAM_WAIT;
+					spammed(whoLimiter, con, recipient, host);
 				}
 				return;
-			} else if (iregex("^wh?[aeu]re?('?[sz]| i[sz]| si| be?)( m(a[ih]|y))?", msg)) {
-				if (System.currentTimeMillis() > nextWho) {	//!spam
+			} else if (talk == TALK_WHERE_IS) {
+				if (spamOK(whoLimiter, con, recipient, host)) {	//!spam
 					String targetName = msg.substring(msg.lastIndexOf(' ')+1, msg.length());
 					targetName = data.removePunctuation(targetName, "!?,");
 					boolean foundAway = false;
@@ -532,12 +1049,12 @@ class SephiaBot implements IRCConnectionListener {
 					} else {
 						con.getIRCIO().privmsg(recipient, targetName + " is " + target.away + ". " + targetName + " has been gone for " + makeTime(target.leaveTime) + ".");
 					}
-					nextWho = System.currentTimeMillis() + SPAM_WAIT;
+					spammed(whoLimiter, con, recipient, host);
 				}
 				return;
-			} else if (iregex("^who am i", msg)) {
-				if (System.currentTimeMillis() > nextWho) {	//!spam
-					User target = data.getUserByHost(host);
+			} else if (talk == TALK_WHO_AM_I) {
+				if (spamOK(whoLimiter, con, recipient, host)) {	//!spam
+					User target = hostUser;
 					if (data.isVino(host)) {
 						con.getIRCIO().privmsg(recipient, "Daddy!");
 						con.getIRCIO().privemote(recipient, "hugs " + nick + ".");
@@ -546,37 +1063,37 @@ class SephiaBot implements IRCConnectionListener {
 					} else {
 						con.getIRCIO().privmsg(recipient, "Nobody important.");
 					}
-					nextWho = System.currentTimeMillis() + SPAM_WAIT;
+					spammed(whoLimiter, con, recipient, host);
 				}
 				return;
-			} else if (iregex("^who('| i)?s your daddy", msg)) {
-				if (System.currentTimeMillis() > nextWho) {	//!spam
+			} else if (talk == TALK_DADDY) {
+				if (spamOK(whoLimiter, con, recipient, host)) {	//!spam
 					con.getIRCIO().privmsg(recipient, "Vino's my daddy, ugh! Spank me again Vino!");
-					nextWho = System.currentTimeMillis() + SPAM_WAIT;
+					spammed(whoLimiter, con, recipient, host);
 				}
 				return;
-			} else if (iregex("^knock knock", msg)) {
-				if (System.currentTimeMillis() > nextWho) {	//!spam
+			} else if (talk == TALK_KNOCK_KNOCK) {
+				if (spamOK(whoLimiter, con, recipient, host)) {	//!spam
 					con.getIRCIO().privmsg(recipient, "Who's there?");
-					nextWho = System.currentTimeMillis() + SPAM_WAIT;
+					spammed(whoLimiter, con, recipient, host);
 				}
 				return;
-			} else if (!censor(con) && iregex("i suck dick", msg)) {
-				if (System.currentTimeMillis() > nextWho) { //!spam
+			} else if (talk == TALK_I_SUCK) {
+				if (spamOK(whoLimiter, con, recipient, host)) { //!spam
 					con.getIRCIO().privmsg(recipient, "Yeah, we know you do.");
-					nextWho = System.currentTimeMillis() + SPAM_WAIT;
+					spammed(whoLimiter, con, recipient, host);
 				}
 				return;
-			} else if (!censor(con) && iregex("words of wisdom", msg)) {
-				if (System.currentTimeMillis() > nextWho) {	//!spam
+			} else if (talk == TALK_WISDOM) {
+				if (spamOK(whoLimiter, con, recipient, host)) {	//!spam
 					String phrase = data.randomPhrase("wordsofwisdom.txt");
 					if (phrase != null)
 						con.getIRCIO().privmsg(recipient, phrase);
-					nextWho = System.currentTimeMillis() + SPAM_WAIT;
+					spammed(whoLimiter, con, recipient, host);
 				}
 				return;
-			} else if (iregex("roll (the )?dice", msg)) {
-				if (System.currentTimeMillis() > nextWho) {	//!spam
+			} else if (talk == TALK_DICE) {
+				if (spamOK(whoLimiter, con, recipient, host)) {	//!spam
 					Random rand = new Random();
 					int dice = rand.nextInt(5)+2;
 					int sides = rand.nextInt(5)+6;
@@ -586,42 +1103,42 @@ class SephiaBot implements IRCConnectionListener {
 					} else {
 						con.getIRCIO().privemote(recipient, "hugs " + nick + ".");
 					}
-					nextWho = System.currentTimeMillis() + SPAM_WAIT;
+					spammed(whoLimiter, con, recipient, host);
 				}
 				return;
-			} else if (iregex("do a little dance", msg)) {
-				if (System.currentTimeMillis() > nextWho) {	//!spam
+			} else if (talk == TALK_DANCE) {
+				if (spamOK(whoLimiter, con, recipient, host)) {	//!spam
 					con.getIRCIO().privemote(recipient, "makes a little love.");
-					nextWho = System.currentTimeMillis() + SPAM_WAIT;
+					spammed(whoLimiter, con, recipient, host);
 				}
 				return;
-			} else if (iregex("excuse", msg)) {
-				if (System.currentTimeMillis() > nextWho) {	//!spam
+			} else if (talk == TALK_EXCUSE) {
+				if (spamOK(whoLimiter, con, recipient, host)) {	//!spam
 					String excuse = data.randomPhrase("excuses.txt");
 					if (excuse != null)
 						con.getIRCIO().privmsg(recipient, "Your excuse is: " + excuse);
 					else
 						con.getIRCIO().privmsg(recipient, "I can't think of one. :(");
-					nextWho = System.currentTimeMillis() + SPAM_WAIT;
+					spammed(whoLimiter, con, recipient, host);
 				}
 				return;
-			} else if (iregex("^why", msg)) {
-				if (System.currentTimeMillis() > nextWho) {	//!spam
+			} else if (talk == TALK_WHY) {
+				if (spamOK(whoLimiter, con, recipient, host)) {	//!spam
 					String why = data.randomPhrase("excuses.txt");
 					if (why != null)
 						con.getIRCIO().privmsg(recipient, why);
 					else
 						con.getIRCIO().privmsg(recipient, "I don't know, sorry. :(");
-					nextWho = System.currentTimeMillis() + SPAM_WAIT;
+					spammed(whoLimiter, con, recipient, host);
 				}
 				return;
-			} else if (iregex("bot[ -]*snack", msg)) {
-				if (System.currentTimeMillis() > nextWho) {	//!spam
+			} else if (talk == TALK_BOT_SNACK) {
+				if (spamOK(whoLimiter, con, recipient, host)) {	//!spam
 					con.getIRCIO().privmsg(recipient, "Yaaaaaay!");
-					nextWho = System.currentTimeMillis() + SPAM_WAIT;
+					spammed(whoLimiter, con, recipient, host);
 				}
 				return;
-			} else if (iregex("^ping\\W*$", msg)) {
+			} else if (talk == TALK_PING) {
 				con.getIRCIO().privmsg(recipient, nick + ", pong");
 				return;
 				
@@ -632,13 +1149,15 @@ class SephiaBot implements IRCConnectionListener {
 				if (tok.hasMoreElements() && (cmd.startsWith(",") || cmd.startsWith(":"))) { 
 					cmd = tok.nextToken(" ");
 				}
-				if (iequals("kill", cmd)) {
+				int command = commandNumber(cmd);
+				dispatchedCommand = command;
+				if (command == CMD_KILL) {
 					if (!tok.hasMoreElements()) {
 						con.getIRCIO().privmsg(recipient, "KILL! KILL! KILL!");
 						return;
 					}
 					String killed = tok.nextToken(" ");
-					User killerUser = data.getUserByHost(host);
+					User killerUser = hostUser;
 					User killedUser = data.getUserByNick(connections, killed);
 					if ((killerUser == null || (killedUser != null && killedUser.memberType > killerUser.memberType)) && !data.isVino(host)) {
 						con.getIRCIO().privemote(recipient, "giggles at " + nick);
@@ -665,7 +1184,7 @@ class SephiaBot implements IRCConnectionListener {
 							try {
 								// Index starts at 0, first displayed message is 1
 								int msgIndex = Integer.parseInt(tok.nextToken()) - 1;
-								User user = data.getUserByHost(host);
+								User user = hostUser;
 								Message messages[] = data.getMessagesBySender(nick, user);
 								if (msgIndex < 0) // try looping around once
 									msgIndex += messages.length + 1; // +1 adjust for skipping 0
@@ -692,7 +1211,7 @@ class SephiaBot implements IRCConnectionListener {
 						return;
 					}
 					return;
-				} else if (iregex("^(remind|tell|ask)$", cmd)) {
+				} else if (command == CMD_REMIND) {
 					// Bit, remind [person] ([at time] || [on day]) OR ([in duration]) [to OR that OR about] [something]
 					// Bit, remind [person] [to OR that OR about] [something] ([at time] || [on day]) OR ([in duration])
 					if (!tok.hasMoreElements()) {
@@ -716,7 +1235,7 @@ class SephiaBot implements IRCConnectionListener {
 					if (targetUser != null)
 						target = targetUser.userName;
 					//If the sending user is logged in, send the messages as his username instead so that all the messages are sent by the same user.
-					User senderUser = data.getUserByHost(host);
+					User senderUser = hostUser;
 					if (senderUser != null)
 						sender = senderUser.userName;
 					if (!tok.hasMoreElements()) {
@@ -732,7 +1251,7 @@ class SephiaBot implements IRCConnectionListener {
 						con.getIRCIO().privmsg(recipient, nfe.getMessage());
 					}
 					return;
-				} else if (iregex("^(butt?)?se(x|ck[sz])$", cmd)) {
+				} else if (command == CMD_SEX) {
 					if (!tok.hasMoreElements()) {
 						con.getIRCIO().privemote(recipient, "anally rapes " + nick + ".");
 						return;
@@ -750,14 +1269,14 @@ class SephiaBot implements IRCConnectionListener {
 						con.getIRCIO().privemote(recipient, "anally rapes " + sexed + ".");
 					}
 					return;
-				} else if (iregex("^re(boot|start)$", cmd)) {
+				} else if (command == CMD_REBOOT) {
 					if (data.isAdmin(host)) {
 						con.getIRCIO().privmsg(recipient, "Be right back.");
 						shutdown(true);
 					} else
 						con.getIRCIO().privmsg(recipient, "No.");
 					return;
-				} else if (iregex("^(shutdown|die|leave)$", cmd)) {
+				} else if (command == CMD_SHUTDOWN) {
 					if (data.isAdmin(host)) {
 						con.getIRCIO().privmsg(recipient, "Goodbye. :(");
 						shutdown(false);
@@ -765,24 +1284,25 @@ class SephiaBot implements IRCConnectionListener {
 						con.getIRCIO().privmsg(recipient, "No.");
 					}
 					return;
-				} else if (iequals("reload", cmd)) {
+				} else if (command == CMD_RELOAD) {
 					if (data.isAdmin(host)) {
 						data.parseConfig();
+						buildChannelNumbers();
 						con.getIRCIO().privmsg(recipient, "Done.");
 					} else {
 						con.getIRCIO().privmsg(recipient, "No.");
 					}
 					return;
-				} else if (iequals("save", cmd)) {
+				} else if (command == CMD_SAVE) {
 					if (data.isAdmin(host)) {
-						data.writeData();
+						writeData();
 						con.getIRCIO().privmsg(recipient, "Done.");
 					} else {
 						con.getIRCIO().privmsg(recipient, "No.");
 					}
 					return;
-				} else if (iequals("listhosts", cmd)) {
-					User user = data.getUserByHost(host);
+				} else if (command == CMD_LISTHOSTS) {
+					User user = hostUser;
 					if (user == null)
 						return;
 					String buffer = "Hosts logged in as " + user.userName + ":";
@@ -791,8 +1311,8 @@ class SephiaBot implements IRCConnectionListener {
 							buffer += " " + (i+1) + ": " + user.hosts[i];
 					con.getIRCIO().privmsg(nick, buffer);
 					return;
-				} else if (iequals("logout", cmd)) {
-					User user = data.getUserByHost(host);
+				} else if (command == CMD_LOGOUT) {
+					User user = hostUser;
 					if (user == null)
 						return;
 					if (!tok.hasMoreElements()) {
@@ -821,7 +1341,7 @@ class SephiaBot implements IRCConnectionListener {
 					} catch (NumberFormatException nfe) {
 					}
 					return;
-				} else if (iequals("login", cmd)) {
+				} else if (command == CMD_LOGIN) {
 					if (tok.countTokens() < 2) {
 						con.getIRCIO().privmsg(nick, "Yeah. Sure. Whatever.");
 						return;
@@ -837,7 +1357,7 @@ class SephiaBot implements IRCConnectionListener {
 						}
 						// If getUserByHost returns non-null then the user is logged into this user already,
 						// or is logged in as another user and may not re-log in.
-						User ghost = data.getUserByHost(host);
+						User ghost = hostUser;
 						if (ghost != null) {
 							con.getIRCIO().privmsg(nick, "Silly you. You're already logged in as " + ghost.userName);
 							return;
@@ -847,18 +1367,18 @@ class SephiaBot implements IRCConnectionListener {
 							con.getIRCIO().privmsg(nick, "Hi, daddy! :D");
 						else
 							con.getIRCIO().privmsg(nick, "What's up " + user.userName + "?");
-						data.writeData();
+						saveData();
 					} else {
 						con.getIRCIO().privmsg(nick, "No cigar.");
 						log("Failed login attempt by " + nick + "!" + host + " with " + login + "/" + passwd + ".");
 					}
 					return;
-				} else if (iregex("^i('|\"| a)?m$", cmd)) {
+				} else if (command == CMD_IM) {
 					if (!tok.hasMoreElements()) {
 						con.getIRCIO().privmsg(recipient, "You're what?");
 						return;
 					}
-					User user = data.getUserByHost(host);
+					User user = hostUser;
 					if (user == null) {
 						con.getIRCIO().privmsg(recipient, "I don't care.");
 						return;
@@ -878,11 +1398,11 @@ class SephiaBot implements IRCConnectionListener {
 						user.away = location.replaceAll("\"", "'");
 						user.leaveTime = System.currentTimeMillis();
 					}
-					data.writeData();
+					saveData();
 					return;
-				} else if (iregex("^(messages|reminders)$", cmd)) {
+				} else if (command == CMD_MESSAGES) {
 					cmd = cmd.toLowerCase();
-					User user = data.getUserByHost(host);
+					User user = hostUser;
 					int lastIndex, firstIndex = 0;
 					if (tok.hasMoreElements()) {
 						try {
@@ -920,7 +1440,7 @@ class SephiaBot implements IRCConnectionListener {
 						con.getIRCIO().privmsg(nick, "Message " + (i+1) + ": For " + target + timeToArrive + ": " + message.message);
 					}
 					return;
-				} else if (iregex("^(say|do|emote)$", cmd)) {
+				} else if (command == CMD_SAY) {
 					if (!data.isAdmin(host)) {
 						con.getIRCIO().privmsg(recipient, "No.");
 						return;
@@ -950,7 +1470,7 @@ class SephiaBot implements IRCConnectionListener {
 					chan = sayCon.getServer().findChannel(targetChannel); //first try the same server
 					if (chan == null)
 						for (int i = 0; i < connections.length; i++) { //search other servers
-							if (connections[i] != sayCon) { //the current one has already been searched
+							if (connections[i] != sayCon && isLive(connections[i])) { //the current one has already been searched
 								chan = connections[i].getServer().findChannel(targetChannel);
 								if (chan != null) {
 									sayCon = connections[i];
@@ -967,7 +1487,7 @@ class SephiaBot implements IRCConnectionListener {
 						sayCon.getIRCIO().privmsg(chan.name, firstWord + everythingElse);
 					else
 						sayCon.getIRCIO().privemote(chan.name, firstWord + everythingElse); return; //TODO: Make mode setting colloquial
-				} else if (iequals("mode", cmd)) {
+				} else if (command == CMD_MODE) {
 					if (!data.isAdmin(host)) {
 						con.getIRCIO().privmsg(recipient, "No.");
 						return;
@@ -991,7 +1511,7 @@ class SephiaBot implements IRCConnectionListener {
 					System.out.println("MODE " + inchannel + " " + mode + " " + who + "\n");
 					con.getIRCIO().setMode(who, inchannel, mode);
 					return;
-				} else if (iregex("^(last|seen)$", cmd)) {
+				} else if (command == CMD_SEEN) {
 					if (!tok.hasMoreTokens()) {
 						con.getIRCIO().privmsg(recipient, "When did I last see who?");
 						return;
@@ -1003,13 +1523,17 @@ class SephiaBot implements IRCConnectionListener {
 					else
 						con.getIRCIO().privmsg(recipient, "Last time I saw " + target.userName + " was " + makeTime(target.lastTalked) + " ago.");
 					return;
-				} else if (iequals("channels", cmd)) {
-					User user = data.getUserByHost(host);
+				} else if (command == CMD_CHANNELS) {
+					User user = hostUser;
 					if (user == null) {
 						con.getIRCIO().privmsg(nick, "It's a secret.");
 						return;
 					}
 					for (int i = 0; i < connections.length; i++) {
+						if (!isLive(connections[i])) {
+							con.getIRCIO().privmsg(nick, "Server: " + data.getNetwork(i) + " (" + conStateNames[conStates.get(i)] + ")");
+							continue;
+						}
 						IRCIO server = connections[i].getIRCIO();
 						String[] channels = server.getChannels();
 						con.getIRCIO().privmsg(nick, "Server: " + server.getNetwork());
@@ -1018,59 +1542,78 @@ class SephiaBot implements IRCConnectionListener {
 						con.getIRCIO().privmsg(nick, "And that's all!");
 					}
 					return;
+				} else if (command == CMD_STATS) {
+					if (!data.isAdmin(host)) {
+						con.getIRCIO().privmsg(recipient, "No.");
+						return;
+					}
+					//Keep this to a few lines; the full set is on JMX.
+					con.getIRCIO().privmsg(nick, "Slowest: " + metrics.slowest(STATS_SLOWEST));
+					con.getIRCIO().privmsg(nick, "Lines in: " + metrics.total("lines.in.") +
+						", throttled: " + metrics.total("throttled.") +
+						", patterns: " + patterns.size() + " cached, " + patterns.getHits() + " hits, " +
+						patterns.getMisses() + " misses");
+					StringBuffer health = new StringBuffer("Networks:");
+					String networks[] = connectionHealth();
+					for (int i = 0; i < networks.length; i++)
+						health.append(i == 0 ? " " : ", ").append(networks[i]);
+					con.getIRCIO().privmsg(nick, health.toString());
+					return;
 				}
 			}	
 		}
 		//Everything above here should return if it does something.
 
 		//Commands where the bot's name can appear at the end
-		if (pm || talkingToMe(origmsg, data.getName(con.getIndex())) || iregex(name + "[^a-zA-Z]*$", msg)) {
+		if (pm || find(names.talkingToMe, origmsg) || find(names.endsWithName, msg)) {
 			if (!censor(con)) {
-				if (iregex("fuck you", msg)) {
-					if (System.currentTimeMillis() > nextWho) {	//!spam
+				int insult = insults.match(msg);
+				if (insult == INSULT_FUCK_YOU) {
+					if (spamOK(whoLimiter, con, recipient, host)) {	//!spam
 						con.getIRCIO().privmsg(recipient, "Fuck you too, buddy.");
-						nextWho = System.currentTimeMillis() + SPAM_WAIT;
+						spammed(whoLimiter, con, recipient, host);
 						return;
 					}
-				} else if (iregex("screw you", msg)) {
-					if (System.currentTimeMillis() > nextWho) {	//!spam
+				} else if (insult == INSULT_SCREW_YOU) {
+					if (spamOK(whoLimiter, con, recipient, host)) {	//!spam
 						con.getIRCIO().privmsg(recipient, "Screw you too, buddy.");
-						nextWho = System.currentTimeMillis() + SPAM_WAIT;
+						spammed(whoLimiter, con, recipient, host);
 						return;
 					}
-				} else if (iregex("you suck", msg)) {
-					if (System.currentTimeMillis() > nextWho) {	//!spam
+				} else if (insult == INSULT_YOU_SUCK) {
+					if (spamOK(whoLimiter, con, recipient, host)) {	//!spam
 						con.getIRCIO().privmsg(recipient, "I suck, but you swallow, bitch.");
-						nextWho = System.currentTimeMillis() + SPAM_WAIT;
+						spammed(whoLimiter, con, recipient, host);
 						return;
 					}
 				}
 			}
-			if (data.matchHellos(msg)) {
-				if (System.currentTimeMillis() > nextHi) {	//!spam
+			int reply = data.matchHellos(msg) ? REPLY_HELLO : afterHellos.match(msg);
+			if (reply == REPLY_HELLO) {
+				if (spamOK(hiLimiter, con, recipient, host)) {	//!spam
 					con.getIRCIO().privmsg(recipient, data.getRandomHelloReply());
-					nextHi = System.currentTimeMillis() + 500;
+					spammed(hiLimiter, con, recipient, host);
 					return;
 				}
-			} else if (iregex("(thank( ?(yo)?u|[sz])\\b|\\bt(y|hn?x)\\b)", msg)) {
-				if (System.currentTimeMillis() > nextWho) { //!spam
+			} else if (reply == REPLY_THANKS) {
+				if (spamOK(whoLimiter, con, recipient, host)) { //!spam
 					con.getIRCIO().privmsg(recipient, "No problem.");
-					nextWho = System.currentTimeMillis() + SPAM_WAIT;
+					spammed(whoLimiter, con, recipient, host);
 					return;
 				}
-			} else if (iregex("bounc[ye]", msg)) {
-				if (System.currentTimeMillis() > nextWho) { //!spam
+			} else if (reply == REPLY_BOUNCY) {
+				if (spamOK(whoLimiter, con, recipient, host)) { //!spam
 					con.getIRCIO().privmsg(recipient, "Bouncy, bouncy, bouncy!");
-					nextWho = System.currentTimeMillis() + SPAM_WAIT;
+					spammed(whoLimiter, con, recipient, host);
 					return;
 				}
-			} else if (iregex("(right|correct)", msg)) {
-				if (System.currentTimeMillis() > nextWho) { //!spam
+			} else if (reply == REPLY_RIGHT) {
+				if (spamOK(whoLimiter, con, recipient, host)) { //!spam
 					con.getIRCIO().privmsg(recipient, "Absolutely.");
-					nextWho = System.currentTimeMillis() + SPAM_WAIT;
+					spammed(whoLimiter, con, recipient, host);
 					return;
 				}
-			} else if (iregex("(custard|flavor( of? the? day)?|fotd)", msg)) {
+			} else if (reply == REPLY_CUSTARD) {
 				int offset = 0;
 				if (iregex("tomorrow", msg)) {
 					offset++;
@@ -1085,9 +1628,16 @@ class SephiaBot implements IRCConnectionListener {
 						// Continue as normal if no time expression found
 					}
 				}
-				if (Custard.getMonth() == -1)
+				if (fetchingFlavor()) {
+					//Custard is busy fetching; don't touch it until it's done.
+					lookupFlavor(con, recipient, offset);
+				} else if (Custard.getMonth() == -1) {
+					//Fetching the calendar can take a while. Don't hold up
+					// every connection for it; answer once it's in.
 					con.getIRCIO().privmsg(recipient, "Hold on, I'll check.");
-				con.getIRCIO().privmsg(recipient, Custard.flavorOfTheDay(offset));
+					lookupFlavor(con, recipient, offset);
+				} else
+					con.getIRCIO().privmsg(recipient, Custard.flavorOfTheDay(offset));
 				return;
 			}
 
@@ -1103,6 +1653,127 @@ class SephiaBot implements IRCConnectionListener {
 		}
 	}
 
+	//Build a command class's limiter from its "ms[/burst]" setting, if any.
+	private RateLimiter limiter(String name, long refill, Map<String, String> limits) {
+		int burst = 1;
+		String limit = limits.get(name);
+		if (limit != null) {
+			int slash = limit.indexOf('/');
+			if (slash != -1) {
+				burst = Integer.parseInt(limit.substring(slash+1));
+				limit = limit.substring(0, slash);
+			}
+			refill = Long.parseLong(limit);
+		}
+		return new RateLimiter(refill, burst, metrics.counter("throttled." + name));
+	}
+
+	//Whether the bot may answer someone in this channel, or in PM, without
+	// spamming. Counts the request as throttled if not.
+	private boolean spamOK(RateLimiter limiter, IRCConnection con, String recipient, String host) {
+		long now = System.currentTimeMillis();
+		if (limiter.ready(con.getIndex() + " " + ircLowerCase(recipient), now) && limiter.ready(host, now))
+			return true;
+		limiter.throttle();
+		return false;
+	}
+
+	//Charge an answer against the channel's and the user's limits.
+	private void spammed(RateLimiter limiter, IRCConnection con, String recipient, String host) {
+		long now = System.currentTimeMillis();
+		limiter.use(con.getIndex() + " " + ircLowerCase(recipient), now);
+		limiter.use(host, now);
+	}
+
+	//Queue a flavor of the day lookup. A single worker thread fetches the
+	// calendar and answers every queued lookup; poll() sends the answers.
+	//Asking the same thing twice while it's waiting only queues it once.
+	private void lookupFlavor(IRCConnection con, String recipient, int offset) {
+		synchronized (flavorLookups) {
+			for (int i = 0; i < flavorLookups.size(); i++) {
+				FlavorLookup lookup = flavorLookups.get(i);
+				if (lookup.con == con && lookup.offset == offset && iequals(lookup.recipient, recipient))
+					return;
+			}
+			flavorLookups.add(new FlavorLookup(con, recipient, offset));
+			if (fetchingFlavor)
+				return;
+			fetchingFlavor = true;
+		}
+		Thread worker = new Thread("Custard lookup") {
+			public void run() {
+				while (true) {
+					FlavorLookup lookup;
+					synchronized (flavorLookups) {
+						if (flavorLookups.isEmpty()) {
+							fetchingFlavor = false;
+							return;
+						}
+						lookup = flavorLookups.remove(0);
+					}
+					String flavor;
+					try {
+						flavor = Custard.flavorOfTheDay(lookup.offset);
+					} catch (RuntimeException e) {
+						logerror("Couldn't look up the flavor of the day: " + e);
+						//Everyone still waiting was told to hold on. Apologize
+						// to them and forget the lookups so the next request
+						// can try again.
+						synchronized (flavorLookups) {
+							synchronized (replies) {
+								replies.add(new Reply(lookup.con, lookup.recipient, FLAVOR_ERROR));
+								for (int i = 0; i < flavorLookups.size(); i++) {
+									FlavorLookup waiting = flavorLookups.get(i);
+									replies.add(new Reply(waiting.con, waiting.recipient, FLAVOR_ERROR));
+								}
+							}
+							flavorLookups.clear();
+							fetchingFlavor = false;
+						}
+						return;
+					}
+					synchronized (replies) {
+						replies.add(new Reply(lookup.con, lookup.recipient, flavor));
+					}
+				}
+			}
+		};
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	//Whether the lookup worker is using Custard right now. Only callbacks
+	// start the worker, so a false answer holds for the rest of a callback.
+	private boolean fetchingFlavor() {
+		synchronized (flavorLookups) {
+			return fetchingFlavor;
+		}
+	}
+
+	//Send queued lines, at most REPLIES_PER_POLL per pass so a long
+	// broadcast goes out at a pace the servers won't flood us off for. The
+	// rest wait for the next pass.
+	private void sendReplies() {
+		Reply pending[];
+		synchronized (replies) {
+			if (replies.isEmpty())
+				return;
+			int n = Math.min(replies.size(), REPLIES_PER_POLL);
+			pending = new Reply[n];
+			for (int i = 0; i < n; i++)
+				pending[i] = replies.remove(0);
+		}
+		for (int i = 0; i < pending.length; i++) {
+			Reply reply = pending[i];
+			if (!isLive(reply.con))
+				continue;
+			if (reply.emote)
+				reply.con.getIRCIO().privemote(reply.recipient, reply.message);
+			else
+				reply.con.getIRCIO().privmsg(reply.recipient, reply.message);
+		}
+	}
+
 	public boolean talkingToMe(String msg, String name) {
 		int nameEnd = name.length() < 4 ? name.length() : 4;
 		return iregex("^"+name.substring(0, nameEnd), msg);
@@ -1117,13 +1788,22 @@ class SephiaBot implements IRCConnectionListener {
 		}
 	}
 		
-	public void messageChannelJoin(IRCConnection con, String nick, String host, String channelName) {
+	public synchronized void messageChannelJoin(IRCConnection con, String nick, String host, String channelName) {
+		long start = System.nanoTime();
+		try {
+			handleChannelJoin(con, nick, host, channelName);
+		} finally {
+			joinTime.record(start);
+		}
+	}
+
+	private void handleChannelJoin(IRCConnection con, String nick, String host, String channelName) {
 
 		String log;
 
 		log = "--> " + nick + " has joined " + channelName;
 
-		con.logfile(channelName, log);
+		logfile(con, channelName, log);
 
 		//Say something as you enter the channel!
 		nick = nick.replaceFirst("-+$", "");
@@ -1150,7 +1830,7 @@ class SephiaBot implements IRCConnectionListener {
 			user.lastChannel = ircchan;
 
 		//blacklist, check for messages
-		checkForMessages(con, nick, host, channelName);
+		checkForMessages(con, nick, user, channelName);
 		checkForBlacklist(con, nick, host, channelName);
 
 		//Add user to channel's user list
@@ -1162,7 +1842,16 @@ class SephiaBot implements IRCConnectionListener {
 		}
 	}
 
-	public void messageChannelPart(IRCConnection con, String nick, String host, String channelName, String message, boolean kicked) {
+	public synchronized void messageChannelPart(IRCConnection con, String nick, String host, String channelName, String message, boolean kicked) {
+		long start = System.nanoTime();
+		try {
+			handleChannelPart(con, nick, host, channelName, message, kicked);
+		} finally {
+			partTime.record(start);
+		}
+	}
+
+	private void handleChannelPart(IRCConnection con, String nick, String host, String channelName, String message, boolean kicked) {
 
 		String log;
 
@@ -1171,7 +1860,7 @@ class SephiaBot implements IRCConnectionListener {
 		if (message != null) {
 			log += " (" + message + ")";
 		}
-		con.logfile(channelName, log);
+		logfile(con, channelName, log);
 
 		//unset lastChannel if leaving
 		User user = data.getUserByHost(host);
@@ -1191,13 +1880,22 @@ class SephiaBot implements IRCConnectionListener {
 		}
 	}
 
-	public void messageQuit(IRCConnection con, String nick, String host, String msg) {
+	public synchronized void messageQuit(IRCConnection con, String nick, String host, String msg) {
+		long start = System.nanoTime();
+		try {
+			handleQuit(con, nick, host, msg);
+		} finally {
+			quitTime.record(start);
+		}
+	}
+
+	private void handleQuit(IRCConnection con, String nick, String host, String msg) {
 		String log;
 		log = "<-- " + nick + " has quit ";
 		if (msg != null) {
 			log += " (" + msg + ")";
 		}
-		con.logfile(null, log);
+		logfile(con, null, log);
 
 		//unset lastChannel
 		User user = data.getUserByHost(host);
@@ -1210,10 +1908,19 @@ class SephiaBot implements IRCConnectionListener {
 			channels[i].deleteUser(nick);
 	}
 
-	public void messageNickChange(IRCConnection con, String nick, String host, String newname) {
+	public synchronized void messageNickChange(IRCConnection con, String nick, String host, String newname) {
+		long start = System.nanoTime();
+		try {
+			handleNickChange(con, nick, host, newname);
+		} finally {
+			nickTime.record(start);
+		}
+	}
+
+	private void handleNickChange(IRCConnection con, String nick, String host, String newname) {
 		String log;
 		log = "--- " + nick + " changed his name to " + newname;
-		con.logfile(null, log);
+		logfile(con, null, log);
 
 		//Is this my nick?
 		if (nick.equals(con.getIRCIO().getName()))
@@ -1225,13 +1932,22 @@ class SephiaBot implements IRCConnectionListener {
 			channels[i].updateUser(nick, newname, null, IRCServer.ACCESS_UNKNOWN);
 	}
 
-	public void messageModeChange(IRCConnection con, String nick, String host, String channelName, String mode, String recipient) {
+	public synchronized void messageModeChange(IRCConnection con, String nick, String host, String channelName, String mode, String recipient) {
+		long start = System.nanoTime();
+		try {
+			handleModeChange(con, nick, host, channelName, mode, recipient);
+		} finally {
+			modeTime.record(start);
+		}
+	}
+
+	private void handleModeChange(IRCConnection con, String nick, String host, String channelName, String mode, String recipient) {
 
 		String log;
 
 		log = "--- " + nick + " set mode " + mode + " on " + recipient;
 
-		con.logfile(channelName, log);
+		logfile(con, channelName, log);
 
 		int access = IRCServer.ACCESS_UNKNOWN;
 		if (mode.equalsIgnoreCase("-v") || mode.equalsIgnoreCase("-o"))
@@ -1251,7 +1967,16 @@ class SephiaBot implements IRCConnectionListener {
 		}
 	}
 
-	public void messageChanList(IRCConnection con, String channelName, String list) {
+	public synchronized void messageChanList(IRCConnection con, String channelName, String list) {
+		long start = System.nanoTime();
+		try {
+			handleChanList(con, channelName, list);
+		} finally {
+			chanListTime.record(start);
+		}
+	}
+
+	private void handleChanList(IRCConnection con, String channelName, String list) {
 
 		int channum = channelNumber(con.getIndex(), channelName);
 
@@ -1282,10 +2007,18 @@ class SephiaBot implements IRCConnectionListener {
 
 	}
 
-	public void messageUserHosts(IRCConnection con, String users) {
+	public synchronized void messageUserHosts(IRCConnection con, String users) {
+		long start = System.nanoTime();
+		try {
+			handleUserHosts(con, users);
+		} finally {
+			userHostsTime.record(start);
+		}
+	}
+
+	private void handleUserHosts(IRCConnection con, String users) {
 		StringTokenizer tok = new StringTokenizer(users, " =");
 
-hostFinder:
 		while (tok.hasMoreElements()) {
 			String name = tok.nextToken();
 
@@ -1297,46 +2030,79 @@ hostFinder:
 			host = host.substring(1, host.length());
 
 			//For every channel, find users that fit this username and assign this host to them.
-			for (int i = 0; i < con.getServer().channels.length; i++) {
-				for (IRCUser curr = con.getServer().channels[i].users; curr != null; curr = curr.next) {
-					if (curr.name.equals(name)) {
-						curr.host = host;
-						continue hostFinder;
-					}
-				}
-			}
+			// Let each channel look the member up itself.
+			IRCChannel[] channels = con.getServer().channels;
+			for (int i = 0; i < channels.length; i++)
+				channels[i].updateUser(name, null, host, IRCServer.ACCESS_UNKNOWN);
 		}
 	}
 
-	public void messageWho(IRCConnection con, String userchannel, String usernick, String username, String host, String realname) {
-		for (int i = 0; i < con.getServer().channels.length; i++) {
-			if (con.getServer().channels[i].name.equalsIgnoreCase(userchannel)) {
-				for (IRCUser curr = con.getServer().channels[i].users; curr != null; curr = curr.next) {
-					if (curr.name.equalsIgnoreCase(usernick)) {
-						curr.host = username + "@" + host;
-						return;
-					}
-				}
-				return;
-			}
+	public synchronized void messageWho(IRCConnection con, String userchannel, String usernick, String username, String host, String realname) {
+		long start = System.nanoTime();
+		try {
+			handleWho(con, userchannel, usernick, username, host, realname);
+		} finally {
+			whoTime.record(start);
 		}
 	}
+
+	private void handleWho(IRCConnection con, String userchannel, String usernick, String username, String host, String realname) {
+		IRCChannel channel = con.getServer().findChannel(userchannel);
+		if (channel != null)
+			channel.updateUser(usernick, null, username + "@" + host, IRCServer.ACCESS_UNKNOWN);
+	}
 	
+	//Every raw line from the server comes through here, handled or not.
 	public void messageReceived(IRCConnection con, String msg) {
-
+		linesIn[con.getIndex()].increment();
+		//RPL_ISUPPORT: ":server 005 nick TOKEN TOKEN ... :are supported by this server"
+		int numeric = msg.indexOf(" 005 ");
+		if (msg.startsWith(":") && numeric != -1 && numeric == msg.indexOf(' '))
+			readISupport(con, msg.substring(numeric + " 005 ".length()));
 	}
 
 	public int channelNumber(int serverID, String channelName) {
-		for (int channum = 0; channum < data.getNumChannels(serverID); channum++) {
-			if (channelName.equalsIgnoreCase(data.getChannel(serverID, channum))) {
-				return channum;
-			}
+		if (serverID < 0 || serverID >= channelNumbers.size())
+			return -1;
+		Integer channum = channelNumbers.get(serverID).get(ircLowerCase(channelName));
+		return channum == null ? -1 : channum.intValue();
+	}
+
+	//Map each network's configured channel names to their config index.
+	//Must be called again whenever the config is parsed.
+	private void buildChannelNumbers() {
+		ArrayList<HashMap<String, Integer>> numbers = new ArrayList<HashMap<String, Integer>>();
+		for (int i = 0; i < data.getNumNetworks(); i++) {
+			HashMap<String, Integer> channels = new HashMap<String, Integer>();
+			for (int channum = data.getNumChannels(i) - 1; channum >= 0; channum--)
+				channels.put(ircLowerCase(data.getChannel(i, channum)), Integer.valueOf(channum));
+			numbers.add(channels);
+		}
+		channelNumbers = numbers;
+	}
+
+	//Lowercase a nick or channel name the way RFC 1459 compares them,
+	// where []\^ are the uppercase forms of {}|~.
+	static String ircLowerCase(String name) {
+		char chars[] = name.toCharArray();
+		for (int i = 0; i < chars.length; i++) {
+			char c = chars[i];
+			if (c == '[')
+				chars[i] = '{';
+			else if (c == ']')
+				chars[i] = '}';
+			else if (c == '\\')
+				chars[i] = '|';
+			else if (c == '^')
+				chars[i] = '~';
+			else
+				chars[i] = Character.toLowerCase(c);
 		}
-		return -1;
+		return new String(chars);
 	}
 
 	//Bot system log
-	public void log(String log) {
+	public synchronized void log(String log) {
 		data.log(log);
 	}
 
@@ -1349,24 +2115,86 @@ hostFinder:
 		return data.getLogdir();
 	}
 
+	//Queue message for every channel on every live network. The lines are
+	// paced out by sendReplies().
 	public void broadcast(String message) {
+		boolean emote = message.startsWith("*");
+		if (emote)
+			message = message.substring(1);
+		int totalChannels = 0, totalLines = 0;
 		for (int i = 0; i < connections.length; i++) {
 			IRCConnection con = connections[i];
-			for (int j = 0; j < con.getServer().channels.length; j++) {
-				IRCChannel chan = con.getServer().channels[j];
-				if (message.startsWith("*"))
-					connections[i].getIRCIO().privemote(chan.name, message.substring(1));
-				else
-					connections[i].getIRCIO().privmsg(chan.name, message);
+			if (!isLive(con))
+				continue;
+			IRCChannel[] channels = con.getServer().channels;
+			//Send to as many channels per line as the server allows.
+			StringBuffer targets = new StringBuffer();
+			int numTargets = 0;
+			for (int j = 0; j <= channels.length; j++) {
+				if (numTargets > 0 && (j == channels.length || numTargets >= maxTargets.get(i) ||
+						targets.length() + channels[j].name.length() + message.length() >= MAX_BROADCAST_LENGTH)) {
+					synchronized (replies) {
+						replies.add(new Reply(con, targets.toString(), message, emote));
+					}
+					totalLines++;
+					targets.setLength(0);
+					numTargets = 0;
+				}
+				if (j == channels.length)
+					break;
+				if (numTargets > 0)
+					targets.append(',');
+				targets.append(channels[j].name);
+				numTargets++;
+				totalChannels++;
 			}
 		}
+		log("Queued broadcast to " + totalChannels + " channels in " + totalLines + " lines.");
+	}
+
+	//Read the parameters of an RPL_ISUPPORT (005) line to learn how many
+	// targets the server accepts in a single PRIVMSG.
+	private void readISupport(IRCConnection con, String params) {
+		StringTokenizer tok = new StringTokenizer(params, " ");
+		while (tok.hasMoreElements()) {
+			String param = tok.nextToken();
+			if (param.startsWith("MAXTARGETS=")) {
+				maxTargets.set(con.getIndex(), parseTargets(param.substring("MAXTARGETS=".length())));
+			} else if (param.startsWith("TARGMAX=")) {
+				// TARGMAX=PRIVMSG:4,NOTICE:4,JOIN:
+				StringTokenizer cmds = new StringTokenizer(param.substring("TARGMAX=".length()), ",");
+				while (cmds.hasMoreElements()) {
+					String cmd = cmds.nextToken();
+					if (cmd.toUpperCase(Locale.ENGLISH).startsWith("PRIVMSG:"))
+						maxTargets.set(con.getIndex(), parseTargets(cmd.substring("PRIVMSG:".length())));
+				}
+			}
+		}
+	}
+
+	//An empty limit means no limit; MAX_BROADCAST_LENGTH still applies.
+	private int parseTargets(String limit) {
+		if (limit.length() == 0)
+			return Integer.MAX_VALUE;
+		try {
+			int targets = Integer.parseInt(limit);
+			return targets < 1 ? 1 : targets;
+		} catch (NumberFormatException nfe) {
+			return 1;
+		}
 	}
 	
 	public void shutdown(boolean reboot) {
-		for (int i = 0; i < connections.length; i++) {
-			connections[i].getIRCIO().quit(reboot?"Rebooting":"Quitting");
+		//Connections still being dialed belong to their connect threads; those
+		// are daemons and die with us.
+		try {
+			for (int i = 0; i < connections.length; i++) {
+				if (isLive(connections[i]))
+					connections[i].getIRCIO().quit(reboot?"Rebooting":"Quitting");
+			}
+		} finally {
+			writeData();
 		}
-		data.writeData();
 		System.exit(reboot?1:0);
 	}
   